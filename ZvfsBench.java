@@ -0,0 +1,171 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+
+// Micro-benchmark for the entry table scan: the old per-entry reads + String matching against the
+// single table read + SWAR helpers in zvfs. There is no JMH in this repo, so it uses a warm-up and a timed loop.
+//   javac zvfs.java ZvfsBench.java && java ZvfsBench [entries]
+// entries > 32 only runs the in-memory scans, to see how they scale with larger tables.
+public class ZvfsBench {
+
+    static final int WARMUP_ROUNDS = 5;
+    static final int MEASURE_ROUNDS = 10;
+    static final int ENTRY_SIZE = 64;
+
+    public static void main(String[] args) throws IOException {
+        int entries = zvfs.MAX_ENTRIES;
+        if (args.length > 0){
+            entries = Integer.parseInt(args[0]);
+        }
+        ByteBuffer tableBuffer = fullTable(entries);
+        String lastName = "file_" + (entries - 1) + ".txt"; // worst case: the match is the last entry
+        ByteBuffer lastNameWords = ByteBuffer.wrap(zvfs.nameField(lastName)).order(ByteOrder.LITTLE_ENDIAN);
+        int finalEntries = entries;
+        int calls = Math.max(100, 100_000 * zvfs.MAX_ENTRIES / entries);
+
+        System.out.println("Full table, " + entries + " entries");
+        bench("lookup, String equals", calls, () -> stringLookup(tableBuffer, finalEntries, lastName));
+        bench("lookup, SWAR", calls, () -> swarLookup(tableBuffer, finalEntries, lastNameWords));
+        bench("count active/deleted, byte loop", calls, () -> byteCount(tableBuffer, finalEntries));
+        bench("count active/deleted, SWAR", calls, () -> swarCount(tableBuffer, finalEntries));
+
+        if (entries != zvfs.MAX_ENTRIES){
+            return;
+        }
+        Path image = Files.createTempFile("zvfs-bench", ".zvfs");
+        try {
+            Files.delete(image);
+            zvfs.makeFS(image.toString());
+            try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                tableBuffer.clear();
+                channel.write(tableBuffer, zvfs.HEADER_SIZE);
+                bench("image lookup, per-entry reads + String", 10_000, () -> imageLookupPerEntry(channel, lastName));
+                bench("image lookup, table read + SWAR", 10_000, () -> imageLookupTable(channel, lastNameWords));
+            }
+        } finally {
+            Files.deleteIfExists(image);
+        }
+    }
+
+    // every entry in use, every 4th one deleted
+    static ByteBuffer fullTable(int entries){
+        ByteBuffer tableBuffer = ByteBuffer.allocate(entries * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < entries; i++){
+            tableBuffer.position(i * ENTRY_SIZE);
+            tableBuffer.put(zvfs.nameField("file_" + i + ".txt"))
+                       .putInt(0)
+                       .putInt(i)
+                       .put((byte) 0)
+                       .put((byte) (i % 4 == 3 ? 1 : 0))
+                       .putShort((short) 0)
+                       .putLong(0)
+                       .put(new byte[12]);
+        }
+        tableBuffer.clear();
+        return tableBuffer;
+    }
+
+    static long stringLookup(ByteBuffer tableBuffer, int entries, String name){
+        for (int i = 0; i < entries; i++){
+            byte[] nameBytes = Arrays.copyOfRange(tableBuffer.array(), i * ENTRY_SIZE, i * ENTRY_SIZE + 32);
+            if (new String(nameBytes, StandardCharsets.UTF_8).split("\0")[0].equals(name)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static long swarLookup(ByteBuffer tableBuffer, int entries, ByteBuffer nameWords){
+        for (int i = 0; i < entries; i++){
+            if (zvfs.nameEquals(tableBuffer, i * ENTRY_SIZE, nameWords)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // zvfs.isEmptyName: byte loop with an early exit
+    static long byteCount(ByteBuffer tableBuffer, int entries){
+        long active = 0;
+        long deleted = 0;
+        for (int i = 0; i < entries; i++){
+            if (zvfs.isEmptyName(tableBuffer, i * ENTRY_SIZE)){
+                continue;
+            }
+            if (tableBuffer.get(i * ENTRY_SIZE + zvfs.FLAG_OFFSET) == 0){
+                active++;
+            } else {
+                deleted++;
+            }
+        }
+        return active * 1000 + deleted;
+    }
+
+    // the name field OR-ed as four longs, slower than the byte loop on 32 entry tables
+    static long swarCount(ByteBuffer tableBuffer, int entries){
+        long active = 0;
+        long deleted = 0;
+        for (int i = 0; i < entries; i++){
+            int offset = i * ENTRY_SIZE;
+            if ((tableBuffer.getLong(offset) | tableBuffer.getLong(offset + 8)
+                    | tableBuffer.getLong(offset + 16) | tableBuffer.getLong(offset + 24)) == 0){
+                continue;
+            }
+            if (tableBuffer.get(offset + zvfs.FLAG_OFFSET) == 0){
+                active++;
+            } else {
+                deleted++;
+            }
+        }
+        return active * 1000 + deleted;
+    }
+
+    // how the lookups read the image before: one 64 byte read per entry
+    static long imageLookupPerEntry(FileChannel channel, String name){
+        try {
+            for (int i = 0; i < zvfs.MAX_ENTRIES; i++){
+                ByteBuffer entryBuffer = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(entryBuffer, zvfs.HEADER_SIZE + (long) i * ENTRY_SIZE);
+                byte[] nameBytes = Arrays.copyOf(entryBuffer.array(), 32);
+                if (new String(nameBytes, StandardCharsets.UTF_8).split("\0")[0].equals(name)){
+                    return i;
+                }
+            }
+            return -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static long imageLookupTable(FileChannel channel, ByteBuffer nameWords){
+        try {
+            return swarLookup(zvfs.readTable(channel, zvfs.HEADER_SIZE, ENTRY_SIZE), zvfs.MAX_ENTRIES, nameWords);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // prints the median time per call over the measured rounds
+    static void bench(String label, int calls, LongSupplier task){
+        long sink = 0;
+        long[] roundNanos = new long[MEASURE_ROUNDS];
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++){
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++){
+                sink += task.getAsLong();
+            }
+            if (round >= WARMUP_ROUNDS){
+                roundNanos[round - WARMUP_ROUNDS] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(roundNanos);
+        double nanosPerCall = (double) roundNanos[MEASURE_ROUNDS / 2] / calls;
+        System.out.printf("%-42s %10.1f ns/op  (%d)%n", label, nanosPerCall, sink % 10);
+    }
+}
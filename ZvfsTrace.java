@@ -0,0 +1,57 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Replays a compat.py trace inside one JVM and times every call into zvfs, so the timings show the
+// engine and not JVM startup. Each trace line is "<image> <op> [file]", paths relative to the working directory.
+//   java ZvfsTrace <trace> <timings>    writes one "<op> <nanoseconds>" line per trace line
+public class ZvfsTrace {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2){
+            System.out.println("Wrong command");
+            return;
+        }
+        List<String> steps = Files.readAllLines(Paths.get(args[0]));
+        long[] nanos = new long[steps.size()];
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // zvfs reports every call on stdout
+        try {
+            for (int i = 0; i < steps.size(); i++){
+                String[] step = steps.get(i).split(" ");
+                long start = System.nanoTime();
+                switch (step[1]){
+                    case "mkfs":
+                        zvfs.makeFS(step[0]);
+                        break;
+                    case "addfs":
+                        zvfs.addFS(step[0], step[2]);
+                        break;
+                    case "rmfs":
+                        zvfs.removeFS(step[0], step[2]);
+                        break;
+                    case "dfrgfs":
+                        zvfs.dfrgfs(step[0]);
+                        break;
+                    case "getfs":
+                        zvfs.getFS(step[0], step[2]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown operation: " + step[1]);
+                }
+                nanos[i] = System.nanoTime() - start;
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+
+        List<String> timings = new ArrayList<>();
+        for (int i = 0; i < steps.size(); i++){
+            timings.add(steps.get(i).split(" ")[1] + " " + nanos[i]);
+        }
+        Files.write(Paths.get(args[1]), timings);
+    }
+}
@@ -0,0 +1,399 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+// Presents several .zvfs images (shards) as one namespace. The volume file lists one image path per line,
+// relative to the volume file. Every image keeps the normal on-disk format, so zvfs/zvfs.py still work on each shard.
+public class ZvfsVolume {
+
+    static final int VIRTUAL_NODES = 64; // points per shard on the hash ring, evens out the placement
+
+    private final Path volumeFile;
+    private final List<String> shards = new ArrayList<>();
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+    public static void main(String[] args) {
+        if (args.length < 2){
+            System.out.println("Wrong command");
+            return;
+        }
+        String command = args[0];
+        String vol = args[1];
+        List<String> files = Arrays.asList(args).subList(2, args.length);
+
+        try {
+            if (command.equals("mkvol")){
+                if (files.isEmpty()){
+                    System.out.println("Wrong command");
+                    return;
+                }
+                mkvol(vol, files);
+                return;
+            }
+            if ((Files.exists(Paths.get(vol))) == false){
+                System.out.println("Error: " + vol + " does not exist");
+                return;
+            }
+            ZvfsVolume volume = new ZvfsVolume(Paths.get(vol));
+
+            switch (command){
+                case "addshard":
+                    if (files.size() != 1){
+                        System.out.println("Wrong command");
+                        return;
+                    }
+                    volume.addShard(files.get(0));
+                    break;
+                case "gifs":
+                    volume.getInfoFS();
+                    break;
+                case "lsfs":
+                    volume.lsfs();
+                    break;
+                case "dfrgfs":
+                    volume.dfrgfs();
+                    break;
+                case "rebalance":
+                    volume.rebalance();
+                    break;
+                case "addfs":
+                case "getfs":
+                case "rmfs":
+                case "catfs":
+                    if (files.isEmpty()){
+                        System.out.println("Wrong command");
+                        return;
+                    }
+                    volume.perFile(command, files);
+                    break;
+                default:
+                    System.out.println("Unknown command: " + command);
+            }
+        } catch (IOException e) {
+            System.out.println("An error occurred while reading the volume: " + e.getMessage());
+        }
+    }
+
+    public ZvfsVolume(Path volumeFile) throws IOException {
+        this.volumeFile = volumeFile;
+        Path volumeDir = volumeFile.toAbsolutePath().getParent();
+        for (String line : Files.readAllLines(volumeFile, StandardCharsets.UTF_8)){
+            if (line.trim().isEmpty()){
+                continue;
+            }
+            shards.add(volumeDir.resolve(line.trim()).toString());
+        }
+        for (int shard = 0; shard < shards.size(); shard++){
+            addToRing(shard);
+        }
+    }
+
+    public static void mkvol(String vol, List<String> images) throws IOException {
+        Path volumeFile = Paths.get(vol);
+        if (Files.exists(volumeFile)){
+            System.out.println("Volume already exists.");
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (String image : images){
+            if ((Files.exists(Paths.get(image))) == false){
+                zvfs.makeFS(image);
+            }
+            lines.add(relativeToVolume(volumeFile, image));
+        }
+        Files.write(volumeFile, lines, StandardCharsets.UTF_8);
+        System.out.println("Created volume with " + images.size() + " shards");
+    }
+
+    // new shards only take over the names that hash to them, run rebalance to move those files
+    public void addShard(String image) throws IOException {
+        String resolved = volumeFile.toAbsolutePath().getParent().resolve(relativeToVolume(volumeFile, image)).toString();
+        if (shards.contains(resolved)){
+            System.out.println("Error: " + image + " is already a shard");
+            return;
+        }
+        if ((Files.exists(Paths.get(image))) == false){
+            zvfs.makeFS(image);
+        }
+        Files.write(volumeFile, Collections.singletonList(relativeToVolume(volumeFile, image)), StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+        shards.add(resolved);
+        addToRing(shards.size() - 1);
+        System.out.println("Added shard " + image);
+    }
+
+    public void getInfoFS() throws IOException {
+        List<Callable<long[]>> tasks = new ArrayList<>();
+        for (String shard : shards){
+            tasks.add(() -> readCounts(shard));
+        }
+        long activeFile = 0;
+        long emptyFile = 0;
+        long deletedFile = 0;
+        long totalFileSize = 0;
+        for (long[] counts : runParallel(tasks)){
+            activeFile += counts[0];
+            emptyFile += counts[1];
+            deletedFile += counts[2];
+            totalFileSize += counts[3];
+        }
+        System.out.println("Volume name: " + volumeFile);
+        System.out.println("Number of shards: " + shards.size());
+        System.out.println("Number of files: " + activeFile);
+        System.out.println("Free entries: " + emptyFile);
+        System.out.println("Deleted files: " + deletedFile);
+        System.out.println("Total size of the files: " + totalFileSize);
+    }
+
+    public void lsfs() throws IOException {
+        List<Callable<List<ByteBuffer>>> tasks = new ArrayList<>();
+        for (String shard : shards){
+            tasks.add(() -> readEntries(shard));
+        }
+        List<ByteBuffer> merged = new ArrayList<>();
+        for (List<ByteBuffer> entries : runParallel(tasks)){
+            merged.addAll(entries);
+        }
+        merged.sort(Comparator.comparing(ZvfsVolume::entryName));
+        for (ByteBuffer entry : merged){
+            String Timestamp = new Date(entry.getLong(44) * 1000L).toString();
+            System.out.println("File: " + entryName(entry) + ", Size: " + entry.getInt(zvfs.LENGTH_OFFSET) + ", Created: " + Timestamp);
+        }
+    }
+
+    public void dfrgfs() throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (String shard : shards){
+            tasks.add(() -> {
+                zvfs.dfrgfs(shard);
+                return null;
+            });
+        }
+        runParallel(tasks);
+    }
+
+    // addfs/getfs/rmfs/catfs for many files: one task per shard, the files of one shard run in order
+    public void perFile(String command, List<String> files) throws IOException {
+        Map<String, Integer> located = locateAll();
+        Map<Integer, List<String>> perShard = new TreeMap<>();
+        for (String file : files){
+            String name = Paths.get(file).getFileName().toString();
+            int shard = located.getOrDefault(name, -1);
+            if (command.equals("addfs")){
+                if (shard != -1){
+                    System.out.println("Error: File with same name can't be added twice");
+                    continue;
+                }
+                shard = shardFor(name);
+                located.put(name, shard); // the same name later in the batch is a duplicate too
+            } else if (shard == -1){
+                System.out.println("File " + file + " not found!");
+                continue;
+            }
+            perShard.computeIfAbsent(shard, k -> new ArrayList<>()).add(file);
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Map.Entry<Integer, List<String>> work : perShard.entrySet()){
+            String shard = shards.get(work.getKey());
+            tasks.add(() -> {
+                for (String file : work.getValue()){
+                    switch (command){
+                        case "addfs":
+                            zvfs.addFS(shard, file);
+                            break;
+                        case "getfs":
+                            zvfs.getFS(shard, file);
+                            break;
+                        case "rmfs":
+                            zvfs.removeFS(shard, file);
+                            break;
+                        case "catfs":
+                            zvfs.catfs(shard, file);
+                            break;
+                    }
+                }
+                return null;
+            });
+        }
+        runParallel(tasks);
+    }
+
+    // moves every file whose name now hashes to another shard, keeping its created timestamp
+    public void rebalance() throws IOException {
+        Path tempDir = Files.createTempDirectory("zvfs-rebalance");
+        int moved = 0;
+        try {
+            for (int shard = 0; shard < shards.size(); shard++){
+                for (ByteBuffer entry : readEntries(shards.get(shard))){
+                    String name = entryName(entry);
+                    int owner = shardFor(name);
+                    if (owner == shard){
+                        continue;
+                    }
+                    // an added shard can already hold another file under the same name, addfs would refuse the copy
+                    if (findEntry(shards.get(owner), name) != null){
+                        System.out.println("Error: " + shards.get(owner) + " already has a file named " + name
+                                + ", kept it on " + shards.get(shard));
+                        continue;
+                    }
+                    Path tempFile = tempDir.resolve(name);
+                    Files.write(tempFile, readData(shards.get(shard), entry));
+                    zvfs.addFS(shards.get(owner), tempFile.toString(), entry.getLong(44));
+                    Files.delete(tempFile);
+                    // only remove the source once the owner holds this copy: same length and created timestamp
+                    ByteBuffer movedEntry = findEntry(shards.get(owner), name);
+                    if (movedEntry == null || movedEntry.getInt(zvfs.LENGTH_OFFSET) != entry.getInt(zvfs.LENGTH_OFFSET)
+                            || movedEntry.getLong(44) != entry.getLong(44)){
+                        System.out.println("Error: " + name + " could not be moved to " + shards.get(owner));
+                        continue;
+                    }
+                    zvfs.removeFS(shards.get(shard), name);
+                    moved++;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tempDir);
+        }
+        System.out.println("Files moved: " + moved);
+    }
+
+    int shardFor(String name){
+        Map.Entry<Long, Integer> point = ring.ceilingEntry(hash(zvfs.nameField(name)));
+        if (point == null){
+            point = ring.firstEntry(); // wrap around the ring
+        }
+        return point.getValue();
+    }
+
+    // name -> shard for every active file, from one parallel table read per shard; a name found on its
+    // owner shard wins, otherwise the first shard that holds it (the volume was not rebalanced yet)
+    private Map<String, Integer> locateAll() throws IOException {
+        List<Callable<List<ByteBuffer>>> tasks = new ArrayList<>();
+        for (String shard : shards){
+            tasks.add(() -> readEntries(shard));
+        }
+        List<List<ByteBuffer>> entriesPerShard = runParallel(tasks);
+        Map<String, Integer> located = new HashMap<>();
+        for (int shard = 0; shard < entriesPerShard.size(); shard++){
+            for (ByteBuffer entry : entriesPerShard.get(shard)){
+                String name = entryName(entry);
+                if (!located.containsKey(name) || shardFor(name) == shard){
+                    located.put(name, shard);
+                }
+            }
+        }
+        return located;
+    }
+
+    private void addToRing(int shard){
+        for (int v = 0; v < VIRTUAL_NODES; v++){
+            ring.put(hash(("shard-" + shard + "#" + v).getBytes(StandardCharsets.UTF_8)), shard);
+        }
+    }
+
+    private static long hash(byte[] key){
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("MD5").digest(key)).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String relativeToVolume(Path volumeFile, String image){
+        Path volumeDir = volumeFile.toAbsolutePath().getParent();
+        return volumeDir.relativize(Paths.get(image).toAbsolutePath()).toString();
+    }
+
+    private static <T> List<T> runParallel(List<Callable<T>> tasks) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, tasks.size()));
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : pool.invokeAll(tasks)){
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // active entries of one shard, each as a copy of its table entry
+    private static List<ByteBuffer> readEntries(String shard) throws IOException {
+        List<ByteBuffer> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(Paths.get(shard), StandardOpenOption.READ)){
+            ByteBuffer headerBuffer = ByteBuffer.allocate(zvfs.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(headerBuffer, 0);
+            short fileEntrySize = headerBuffer.getShort(16);
+            int fileTableOffset = headerBuffer.getInt(20);
+
+            ByteBuffer tableBuffer = ByteBuffer.allocate(zvfs.MAX_ENTRIES * fileEntrySize);
+            channel.read(tableBuffer, fileTableOffset);
+            for (int entryIndex = 0; entryIndex < zvfs.MAX_ENTRIES; entryIndex++){
+                byte[] entryBytes = new byte[fileEntrySize];
+                tableBuffer.position(entryIndex * fileEntrySize);
+                tableBuffer.get(entryBytes);
+                byte[] nameBytes = Arrays.copyOf(entryBytes, 32);
+                if (zvfs.isEmpty(nameBytes) || entryBytes[zvfs.FLAG_OFFSET] == 1){
+                    continue;
+                }
+                entries.add(ByteBuffer.wrap(entryBytes).order(ByteOrder.LITTLE_ENDIAN));
+            }
+        }
+        return entries;
+    }
+
+    private static ByteBuffer findEntry(String shard, String name) throws IOException {
+        for (ByteBuffer entry : readEntries(shard)){
+            if (entryName(entry).equals(name)){
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readData(String shard, ByteBuffer entry) throws IOException {
+        int length = entry.getInt(zvfs.LENGTH_OFFSET);
+        if (entry.get(zvfs.TYPE_OFFSET) == zvfs.TYPE_INLINE){ // payload is part of the entry
+            return Arrays.copyOfRange(entry.array(), zvfs.INLINE_OFFSET, zvfs.INLINE_OFFSET + length);
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(shard), StandardOpenOption.READ)){
+            ByteBuffer dataBuffer = ByteBuffer.allocate(length);
+            channel.read(dataBuffer, entry.getInt(zvfs.START_OFFSET));
+            return dataBuffer.array();
+        }
+    }
+
+    // active files, free entries, deleted files, image size
+    private static long[] readCounts(String shard) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(shard), StandardOpenOption.READ)){
+            ByteBuffer headerBuffer = ByteBuffer.allocate(zvfs.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(headerBuffer, 0);
+            short fileCount = headerBuffer.getShort(12);
+            short fileCapacity = headerBuffer.getShort(14);
+            short deletedFiles = headerBuffer.getShort(36);
+            return new long[] {fileCount, fileCapacity - fileCount - deletedFiles, deletedFiles, channel.size()};
+        }
+    }
+
+    private static String entryName(ByteBuffer entry){
+        byte[] nameBytes = Arrays.copyOf(entry.array(), 32);
+        return new String(nameBytes, StandardCharsets.UTF_8).split("\0")[0];
+    }
+}
@@ -0,0 +1,256 @@
+import argparse
+import contextlib
+import os
+import random
+import shutil
+import statistics
+import subprocess
+import sys
+import tempfile
+import time
+
+sys.dont_write_bytecode = True # importing zvfs for its constants shouldn't leave __pycache__ behind
+import zvfs
+
+# Replays random addfs/rmfs/dfrgfs/getfs traces against zvfs.py and zvfs.java and byte-compares the images
+# after every operation, running each command as its own process. The same traces are then timed in-process,
+# zvfs.py through direct calls and zvfs.java through ZvfsTrace in one JVM, so startup doesn't hide the engines.
+#   python3 compat.py --traces 20 --ops 80 --seed 1 --csv timings.csv
+
+OPERATIONS = ["addfs", "rmfs", "dfrgfs", "getfs"]
+WEIGHTS = [0.5, 0.25, 0.1, 0.15]
+
+# sizes around the inline (12), packed (32) and 64 byte alignment limits, plus some larger files
+FILE_SIZES = [0, 1, 5, 12, 13, 20, 31, 32, 33, 63, 64, 65, 100, 300, 4096, 70000]
+
+CREATED_OFFSET = 44 # entry field that holds the time of addfs, the only bytes allowed to differ
+
+
+def compile_java(project_dir, class_dir):
+    sources = [os.path.join(project_dir, source) for source in ("zvfs.java", "ZvfsTrace.java")]
+    subprocess.run(["javac", "-d", class_dir] + sources, check=True)
+
+
+def make_files(rng):
+    return {f"file{i}.bin": rng.randbytes(rng.choice(FILE_SIZES)) for i in range(40)}
+
+
+# each step is (op, name, active): active tells whether name must be in the image after the step.
+# addfs succeeds if the name isn't stored yet and an entry is free (deleted entries are reused)
+def make_trace(rng, ops, names):
+    trace = []
+    active_names = set()
+    for _ in range(ops):
+        op = rng.choices(OPERATIONS, WEIGHTS)[0]
+        name = None if op == "dfrgfs" else rng.choice(names)
+        if op == "addfs" and name not in active_names and len(active_names) < zvfs.MAX_ENTRIES:
+            active_names.add(name)
+        elif op == "rmfs":
+            active_names.discard(name)
+        trace.append((op, name, name in active_names))
+    return trace
+
+
+def masked_image(path):
+    image = bytearray(open(path, "rb").read())
+    for entry_index in range(zvfs.MAX_ENTRIES):
+        entry_offset = zvfs.HEADER_SIZE + entry_index * 64 + CREATED_OFFSET
+        image[entry_offset:entry_offset + 8] = b"\x00" * 8
+    return bytes(image)
+
+
+def first_difference(a, b):
+    for i in range(min(len(a), len(b))):
+        if a[i] != b[i]:
+            return i
+    return min(len(a), len(b))
+
+
+def run(command, op, name, work_dir):
+    args = command + [op, "image.zvfs"] + ([name] if name else [])
+    if op == "getfs" and os.path.exists(os.path.join(work_dir, name)):
+        os.remove(os.path.join(work_dir, name))
+    subprocess.run(args, cwd=work_dir, stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL)
+    extracted = os.path.join(work_dir, name) if op == "getfs" else None
+    if extracted is None or not os.path.exists(extracted):
+        return None
+    with open(extracted, "rb") as file:
+        return file.read()
+
+
+def replay(trace_index, contents, trace, implementations):
+    work_dirs = {}
+    for impl in implementations:
+        work_dirs[impl] = tempfile.mkdtemp(prefix=f"zvfs-{impl}-")
+        for name, data in contents.items():
+            with open(os.path.join(work_dirs[impl], name), "wb") as file:
+                file.write(data)
+    try:
+        for impl, command in implementations.items():
+            run(command, "mkfs", None, work_dirs[impl])
+
+        for step, (op, name, active) in enumerate(trace):
+            extracted = {}
+            for impl, command in implementations.items():
+                extracted[impl] = run(command, op, name, work_dirs[impl])
+                if op == "getfs": # getfs overwrites the source file, put it back for the next addfs
+                    with open(os.path.join(work_dirs[impl], name), "wb") as file:
+                        file.write(contents[name])
+
+            where = f"trace {trace_index}, step {step}: {op} {name or ''}"
+            if op == "getfs":
+                expected = contents[name] if active else None
+                for impl, result in extracted.items():
+                    if result is None and expected is not None:
+                        return f"{where}: {impl} did not extract an active file"
+                    if result is not None and expected is None:
+                        return f"{where}: {impl} extracted a file that isn't stored"
+                    if result != expected:
+                        return f"{where}: {impl} extracted wrong data"
+
+            images = {impl: masked_image(os.path.join(work_dirs[impl], "image.zvfs")) for impl in implementations}
+            reference_impl, reference = next(iter(images.items()))
+            for impl, image in images.items():
+                if image != reference:
+                    offset = first_difference(reference, image)
+                    return (f"{where}: {reference_impl} and {impl} images differ at byte {offset} "
+                            f"(sizes {len(reference)} and {len(image)})")
+        return None
+    finally:
+        for work_dir in work_dirs.values():
+            shutil.rmtree(work_dir, ignore_errors=True)
+
+
+# every trace on its own image, repeated for each round; files are prefixed with their trace so they can share a directory.
+# getfs only overwrites a source file with the same bytes here, so nothing has to be restored between steps
+def timing_steps(workloads, rounds):
+    steps = []
+    for round_index in range(rounds):
+        for trace_index, (_, trace) in enumerate(workloads):
+            image = f"r{round_index}-t{trace_index}.zvfs"
+            steps.append((image, "mkfs", None))
+            steps.extend((image, op, name and f"t{trace_index}-{name}") for op, name, _ in trace)
+    return steps
+
+
+def write_timing_files(work_dir, workloads):
+    for trace_index, (contents, _) in enumerate(workloads):
+        for name, data in contents.items():
+            with open(os.path.join(work_dir, f"t{trace_index}-{name}"), "wb") as file:
+                file.write(data)
+
+
+def time_python(work_dir, steps):
+    calls = {
+        "mkfs": lambda image, name: zvfs.makeFS(image),
+        "addfs": zvfs.addFS,
+        "rmfs": zvfs.removeFS,
+        "dfrgfs": lambda image, name: zvfs.dfrgfs(image),
+        "getfs": zvfs.getFS,
+    }
+    timings = []
+    previous_dir = os.getcwd()
+    os.chdir(work_dir) # getfs writes to the working directory
+    try:
+        with open(os.devnull, "w") as devnull, contextlib.redirect_stdout(devnull):
+            for image, op, name in steps:
+                start = time.perf_counter()
+                calls[op](image, name)
+                timings.append(("python", op, time.perf_counter() - start))
+    finally:
+        os.chdir(previous_dir)
+    return timings
+
+
+def time_java(work_dir, steps, class_dir):
+    with open(os.path.join(work_dir, "trace.txt"), "w") as file:
+        for image, op, name in steps:
+            file.write(f"{image} {op}" + (f" {name}" if name else "") + "\n")
+    subprocess.run(["java", "-cp", class_dir, "ZvfsTrace", "trace.txt", "timings.txt"], cwd=work_dir, check=True)
+    timings = []
+    with open(os.path.join(work_dir, "timings.txt")) as file:
+        for line in file:
+            op, nanos = line.split()
+            timings.append(("java", op, int(nanos) / 1e9))
+    return timings
+
+
+# the first warmup rounds let the JIT compile zvfs and are left out of the report
+def time_in_process(workloads, class_dir, rounds, warmup):
+    steps = timing_steps(workloads, warmup + rounds)
+    warmup_steps = len(timing_steps(workloads, warmup))
+    timings = []
+    for impl in ("python", "java"):
+        work_dir = tempfile.mkdtemp(prefix=f"zvfs-timing-{impl}-")
+        try:
+            write_timing_files(work_dir, workloads)
+            if impl == "python":
+                samples = time_python(work_dir, steps)
+            else:
+                samples = time_java(work_dir, steps, class_dir)
+            timings.extend(samples[warmup_steps:])
+        finally:
+            shutil.rmtree(work_dir, ignore_errors=True)
+    return timings
+
+
+def print_timings(timings):
+    print(f"{'operation':<8} {'impl':<7} {'count':>6} {'mean ms':>9} {'median ms':>10} {'p95 ms':>9}")
+    for op in ["mkfs"] + OPERATIONS:
+        for impl in sorted({impl for impl, _, _ in timings}):
+            samples = sorted(elapsed * 1000 for i, o, elapsed in timings if i == impl and o == op)
+            if not samples:
+                continue
+            p95 = samples[min(len(samples) - 1, int(len(samples) * 0.95))]
+            print(f"{op:<8} {impl:<7} {len(samples):>6} {statistics.mean(samples):>9.2f} "
+                  f"{statistics.median(samples):>10.2f} {p95:>9.2f}")
+
+
+def write_csv(path, timings):
+    with open(path, "w") as file:
+        file.write("impl,operation,seconds\n")
+        for impl, op, elapsed in timings:
+            file.write(f"{impl},{op},{elapsed:.6f}\n")
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Cross-language compatibility and timing harness for zvfs")
+    parser.add_argument("--traces", type=int, default=10)
+    parser.add_argument("--ops", type=int, default=60, help="operations per trace")
+    parser.add_argument("--seed", type=int, default=0)
+    parser.add_argument("--rounds", type=int, default=3, help="timed replays of all traces")
+    parser.add_argument("--warmup", type=int, default=1, help="untimed replays before the timed ones")
+    parser.add_argument("--csv", help="write every timing sample to this file")
+    args = parser.parse_args()
+
+    project_dir = os.path.dirname(os.path.abspath(__file__))
+    class_dir = tempfile.mkdtemp(prefix="zvfs-classes-")
+    try:
+        compile_java(project_dir, class_dir)
+        implementations = {
+            "python": [sys.executable, os.path.join(project_dir, "zvfs.py")],
+            "java": ["java", "-cp", class_dir, "zvfs"],
+        }
+        workloads = []
+        for trace_index in range(args.traces):
+            # one generator per trace, so a failing trace can be rerun with the same seed
+            rng = random.Random(f"{args.seed}-{trace_index}")
+            contents = make_files(rng)
+            trace = make_trace(rng, args.ops, list(contents))
+            failure = replay(trace_index, contents, trace, implementations)
+            if failure:
+                print(f"MISMATCH (seed {args.seed}) {failure}")
+                sys.exit(1)
+            workloads.append((contents, trace))
+        print(f"{args.traces} traces x {args.ops} operations: images identical")
+
+        timings = time_in_process(workloads, class_dir, args.rounds, args.warmup)
+        print_timings(timings)
+        if args.csv:
+            write_csv(args.csv, timings)
+    finally:
+        shutil.rmtree(class_dir, ignore_errors=True)
+
+
+if __name__ == "__main__":
+    main()
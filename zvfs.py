@@ -15,12 +15,33 @@ SIZE_LIMIT = 4*1024*1024*1024 # 4GB filesystem size limit
 
 ALIGNMENT = 64
 
+SNAPSHOT_HEADER_SIZE = 64 # snapshot records are written by the Java snapfs command
+SNAPSHOT_FORMAT = "<ih" # snapshot_offset, snapshot_count at the start of reserved2
+GROW_POLICY_INDEX = 6 # reserved2 byte set by the Java mkfs --prealloc/--grow, 0 = none
+PACK_INDEX = 14 # reserved2: first free byte of the partly used 64 byte block, 0 = none
+
+INLINE_LIMIT = 12 # payloads up to 12 bytes are stored in the entry's spare bytes
+PACK_LIMIT = ALIGNMENT // 2 # larger files always start a 64 byte block
+TYPE_EXTENT = 0
+TYPE_INLINE = 1
+TYPE_PACKED = 2
+
 def align(offset):
     remainder = offset % ALIGNMENT
     if remainder != 0:
         return offset + (ALIGNMENT - remainder)
     return offset
     
+def fits_pack_block(pack_offset, size):
+    # small files may use the rest of the block the last write ended in, but never cross into the next one
+    return size <= PACK_LIMIT and pack_offset != 0 and pack_offset + size <= align(pack_offset)
+
+def next_pack_offset(end):
+    return end if end % ALIGNMENT != 0 else 0
+
+def with_pack_offset(reserved2, pack_offset):
+    return reserved2[:PACK_INDEX] + struct.pack("<i", pack_offset) + reserved2[PACK_INDEX + 4:]
+
 def makeFS(fs):
     if os.path.exists(fs):
         print(f"Error: {fs} already exists")
@@ -61,6 +82,7 @@ def getInfoFS(fs_file):
         file_entry_size = header_unpack[6] #file_entry_size
         file_table_offset = header_unpack[8] #file_table_offset
         deleted_files_num = header_unpack[12] #deleted_files  
+        snapshot_count = struct.unpack_from(SNAPSHOT_FORMAT, header_unpack[13])[1] # records are written by the Java snapfs
         empty_file_entries = file_capacity - files_num - deleted_files_num     
 
         active_file = 0
@@ -97,6 +119,7 @@ def getInfoFS(fs_file):
     print("Free entries: ", empty_file)
     print("Deleted files: ", deleted_file)
     print("Total size of the file: ", total_file_size)
+    print("Snapshots: ", snapshot_count)
 
 def addFS(fs_path, src_path):
     if not os.path.exists(fs_path):
@@ -122,6 +145,7 @@ def addFS(fs_path, src_path):
         free_entry_offset = header_unpack[11]
         deleted_files = header_unpack[12]
         reserved2 = header_unpack[13]
+        pack_offset = struct.unpack_from("<i", reserved2, PACK_INDEX)[0]
 
         if (file_count == file_capacity):
             print("No more empty entries")
@@ -168,22 +192,34 @@ def addFS(fs_path, src_path):
                 if file_entry_unpack[0] == (b"\x00" * 32) or entry_flag == 1: # file entry no name = empty file, flag = 1 -> file can be overwritten (UNSURE IF WE'RE SUPPOSED TO DO THAT)
                     if entry_flag == 1:
                         deleted_files -= 1
-                    align_start = align(next_free_offset) # all data must be aligned to 64 byte blocks
-                    if align_start > next_free_offset:
-                        padding_size = align_start - next_free_offset
-                        fs_file.seek(next_free_offset)  # the zeropadding needs to start at the next_free_offset
-                        fs_file.write(b"\x00" * padding_size) # fill in with 0 bytes to reach 64 byte blocks
-                    fs_file.seek(align_start) # seek the correct position to start writing file data
-                    fs_file.write(data)
-                    next_free_offset = align(align_start + file_size)
+                    entry_reserved1 = b"\x00" * 12
+                    if file_size <= INLINE_LIMIT: # tiny payloads live in the entry, no data write at all
+                        entry_start = 0
+                        entry_type = TYPE_INLINE
+                        entry_reserved1 = data.ljust(12, b"\x00")
+                    elif fits_pack_block(pack_offset, file_size): # rest of a partly used 64 byte block
+                        entry_start = pack_offset
+                        entry_type = TYPE_PACKED
+                        fs_file.seek(pack_offset)
+                        fs_file.write(data)
+                        pack_offset = next_pack_offset(pack_offset + file_size)
+                    else:
+                        align_start = align(next_free_offset) # all data must be aligned to 64 byte blocks
+                        if align_start > next_free_offset and reserved2[GROW_POLICY_INDEX] == 0: # preallocated tails are already zeroed
+                            padding_size = align_start - next_free_offset
+                            fs_file.seek(next_free_offset)  # the zeropadding needs to start at the next_free_offset
+                            fs_file.write(b"\x00" * padding_size) # fill in with 0 bytes to reach 64 byte blocks
+                        fs_file.seek(align_start) # seek the correct position to start writing file data
+                        fs_file.write(data)
+                        next_free_offset = align(align_start + file_size)
+                        entry_start = align_start
+                        entry_type = TYPE_EXTENT
+                        pack_offset = next_pack_offset(align_start + file_size)
                     
-                    entry_start = align_start
                     entry_length = len(data)
-                    entry_type = 0
                     entry_flag = 0
                     entry_reserved0 = 0
                     entry_timestamp = int(time.time())
-                    entry_reserved1 = b"\x00" * 12
                     entry_packed = struct.pack(
                         FILE_FORMAT,
                         new_entry_name,
@@ -235,7 +271,7 @@ def addFS(fs_path, src_path):
             next_free_offset,
             free_entry_offset,
             deleted_files, 
-            reserved2           
+            with_pack_offset(reserved2, pack_offset)
         ) 
         fs_file.seek(0)
         fs_file.write(header)
@@ -267,8 +303,11 @@ def getFS(fs_path, src_path):
                         print("File is deleted")
                         continue # not break/return, since later another file could be with the same name, where flag = 0
 
-                    fs_file.seek(entry_start)
-                    entry_data = fs_file.read(entry_length)
+                    if file_entry_unpack[3] == TYPE_INLINE: # already read with the entry
+                        entry_data = file_entry_unpack[7][:entry_length]
+                    else:
+                        fs_file.seek(entry_start)
+                        entry_data = fs_file.read(entry_length)
                     with open(src_path,"wb") as output:
                         output.write(entry_data)
                     
@@ -415,8 +454,11 @@ def catfs(fs_file, file_in_fs):
             file_name = raw_name.decode('utf-8').rstrip('\x00')
             
             if file_in_fs == file_name and flag == 0:
-                file.seek(start_offset)
-                data = file.read(file_length)
+                if entry[3] == TYPE_INLINE:
+                    data = entry[7][:file_length]
+                else:
+                    file.seek(start_offset)
+                    data = file.read(file_length)
                 print(data.decode('utf-8'))
                 return
         
@@ -438,6 +480,11 @@ def dfrgfs(fs_file):
         data_offset = header_unpack[9]
         next_free_offset = header_unpack[10]
 
+        # snapshots still reference everything up to the end of the newest snapshot record
+        snapshot_offset = struct.unpack_from(SNAPSHOT_FORMAT, header_unpack[13])[0]
+        if snapshot_offset != 0:
+            data_offset = align(snapshot_offset + SNAPSHOT_HEADER_SIZE + MAX_ENTRIES * file_entry_size)
+
         for i in range(MAX_ENTRIES):
             offset = file_table_offset + i * file_entry_size
             file.seek(offset)
@@ -447,6 +494,7 @@ def dfrgfs(fs_file):
             raw_name = entry[0]
             start_offset = entry[1]
             file_length = entry[2]
+            entry_type = entry[3]
             flag = entry[4]
             created = entry[6]
 
@@ -457,24 +505,40 @@ def dfrgfs(fs_file):
                 del_count += 1
                 continue
 
-
-            file.seek(start_offset)
-            file_data = file.read(file_length)
-            files.append((raw_name, file_data, created))
+            file_data = None # inline files and frozen extents stay where they are
+            if entry_type != TYPE_INLINE and start_offset >= data_offset:
+                file.seek(start_offset)
+                file_data = file.read(file_length)
+            files.append((raw_name, file_data, start_offset, file_length, entry_type, entry[7], created))
 
 
         file.seek(file_table_offset)
         file.write(b'\x00' * (MAX_ENTRIES * file_entry_size))
 
-        for i, (name, data, created) in enumerate(files):
-            position = align(data_offset)
-
-            if position > data_offset:
-                file.seek(data_offset)
-                file.write(b'\x00' * (position - data_offset))
-
-            file.seek(position)
-            file.write(data)
+        pack_offset = 0
+        for i, (name, data, position, length, entry_type, inline, created) in enumerate(files):
+            if data is not None and length <= INLINE_LIMIT:
+                position = 0
+                entry_type = TYPE_INLINE
+                inline = data.ljust(12, b'\x00')
+            elif data is not None and fits_pack_block(pack_offset, length):
+                position = pack_offset
+                entry_type = TYPE_PACKED
+                file.seek(position)
+                file.write(data)
+                pack_offset = next_pack_offset(position + length)
+            elif data is not None:
+                position = align(data_offset)
+
+                if position > data_offset:
+                    file.seek(data_offset)
+                    file.write(b'\x00' * (position - data_offset))
+
+                file.seek(position)
+                file.write(data)
+                data_offset = align(position + length)
+                entry_type = TYPE_EXTENT
+                pack_offset = next_pack_offset(position + length)
 
             file_entry_offset = file_table_offset + i * file_entry_size
 
@@ -482,19 +546,17 @@ def dfrgfs(fs_file):
                 FILE_FORMAT,
                 name,
                 position,
-                len(data),
-                0,
+                length,
+                entry_type,
                 0,
                 0,
                 created,
-                b'\x00' * 12
+                inline
                 )
 
             file.seek(file_entry_offset)
             file.write(re_entry)
 
-            data_offset = align(position + len(data))
-
         freed_bytes = next_free_offset - data_offset
         file_count = len(files)
         new_next_free_offset = data_offset
@@ -520,11 +582,16 @@ def dfrgfs(fs_file):
             new_next_free_offset,
             new_free_entry_offset,
             0,
-            header_unpack[13]
+            with_pack_offset(header_unpack[13], pack_offset)
             )
 
         file.seek(0)
         file.write(header)
+
+        if header_unpack[13][GROW_POLICY_INDEX] != 0 and next_free_offset > new_next_free_offset:
+            # preallocated images keep everything after next_free_offset zeroed
+            file.seek(new_next_free_offset)
+            file.write(b'\x00' * (next_free_offset - new_next_free_offset))
         print(f'Files removed: {del_count}')
         print(f'Bytes freed: {freed_bytes}')
 